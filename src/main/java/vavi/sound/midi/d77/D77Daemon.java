@@ -0,0 +1,673 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+
+import static java.lang.System.getLogger;
+
+
+/**
+ * Render daemon serving clients over a unix domain socket.
+ * <p>
+ * the native driver and the data file are initialized once and kept warm.
+ * all connections are handled by one selector thread with non-blocking nio.
+ * the driver holds only one synth per process, so requests are queued (FIFO) and
+ * rendered one by one by a render thread at full speed into per session chunks,
+ * the selector thread sends them at the client's pace. a slow client does not hold the synth
+ * while the buffers last, a request longer than the max seconds is rejected, a client not reading
+ * for the stall timeout is dropped. the synth is reset (GM System On) before each request.
+ * <p>
+ * memory is bounded. pcm chunks not sent yet are pooled direct buffers up to the max buffered bytes
+ * for all sessions, when they are used up the render thread waits for clients to drain,
+ * and the request fails when no chunk is freed for the stall timeout.
+ * request payloads grow as they arrive, a request whose length does not fit in
+ * the max pending bytes (for all requests not rendered yet) is rejected.
+ * a request rejected before rendering gets the end of pcm and the error status right away.
+ * <pre>
+ * request:
+ *   byte  type     'S': standard midi file, 'E': {@link D77EventStream} (44100Hz)
+ *   int   length   big endian
+ *   byte[length]   payload
+ * response:
+ *   int   length   big endian, &gt; 0, a multiple of 4   (repeated)
+ *   byte[length]   pcm, 16bit signed little endian stereo 44100Hz
+ *   int   0        end of pcm
+ *   byte  status   0: ok, 1: error
+ *   int   length   big endian
+ *   byte[length]   message in utf-8, empty for ok
+ *   then the server closes the connection.
+ * </pre>
+ * per session queue wait, first byte latency (until the first pcm is written to the socket)
+ * and throughput are logged when the session ends.
+ *
+ * <h4>system properties</h4>
+ * <ul>
+ * <li>vavi.sound.midi.d77.daemon.socket ... socket path, default {java.io.tmpdir}/d77.sock</li>
+ * <li>vavi.sound.midi.d77.daemon.maxPayload ... max request payload in bytes, default 16MB</li>
+ * <li>vavi.sound.midi.d77.daemon.maxSeconds ... max rendered length of a request, default 600</li>
+ * <li>vavi.sound.midi.d77.daemon.maxBuffered ... max pcm bytes buffered for all clients, default 64MB</li>
+ * <li>vavi.sound.midi.d77.daemon.maxPending ... max payload bytes of requests not rendered yet, default 64MB</li>
+ * </ul>
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+public class D77Daemon implements Closeable {
+
+    private static final Logger logger = getLogger(D77Daemon.class.getName());
+
+    public static final byte TYPE_SMF = 'S';
+    public static final byte TYPE_STREAM = 'E';
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int maxPayload = Integer.getInteger("vavi.sound.midi.d77.daemon.maxPayload", 16 * 1024 * 1024);
+
+    private static final int maxSeconds = Integer.getInteger("vavi.sound.midi.d77.daemon.maxSeconds", 600);
+
+    private static final int maxBuffered = Integer.getInteger("vavi.sound.midi.d77.daemon.maxBuffered", 64 * 1024 * 1024);
+
+    private static final long maxPending = Long.getLong("vavi.sound.midi.d77.daemon.maxPending", 64 * 1024 * 1024);
+
+    /** chunk size including the frame length, pcm part is a multiple of 4 */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** max number of direct buffers, allocated on demand */
+    private static final int POOL_SIZE = Math.max(2, maxBuffered / CHUNK_SIZE);
+    /** a client not reading nor writing for this long is dropped, ms */
+    private static final long STALL_TIMEOUT = 10_000;
+    /** rendered after the last event, seconds */
+    private static final int TAIL = 2;
+
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final D77Synthesizer synthesizer;
+
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    /** direct buffers allocated so far, render thread only */
+    private int allocated;
+    /** payload bytes reserved by requests not rendered yet */
+    private final AtomicLong pending = new AtomicLong();
+    /** requests fully read, waiting for the synth */
+    private final BlockingQueue<Session> jobs = new LinkedBlockingQueue<>();
+    /** sessions the render thread has something new for */
+    private final Queue<Session> updated = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /** guarded by this */
+    private boolean serving;
+    /** guarded by this */
+    private boolean closed;
+    private volatile boolean running;
+    private Thread renderThread;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    /** the error stopped the render thread */
+    private volatile Throwable fatal;
+
+    /** One client connection. */
+    private final class Session {
+
+        final int id = ids.incrementAndGet();
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer header = ByteBuffer.allocate(5);
+        ByteBuffer payload;
+        /** payload bytes counted in {@link #pending} */
+        final AtomicLong reserved = new AtomicLong();
+        /** the request is fully read */
+        boolean requested;
+        /** frames ready to be sent, filled by the render thread, drained by the selector thread */
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        /** render thread only */
+        ByteBuffer filling;
+        /** set by the render thread after the status frame is queued */
+        volatile boolean done;
+        volatile boolean closed;
+        /** selector thread only, nano time */
+        long lastProgress = System.nanoTime();
+
+        // metrics, nano time
+        final long accepted = System.nanoTime();
+        long queued;
+        long started;
+        long rendered;
+        long firstByte;
+        /** pcm bytes rendered */
+        long bytes;
+        /** bytes written to the socket */
+        long sent;
+        int events;
+        volatile String error;
+
+        Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * {@link D77Synthesizer.PcmSink}, render thread.
+         * waits for clients only when all buffers are in flight.
+         */
+        void write(byte[] pcm, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                if (closed) {
+                    throw new IOException("session closed");
+                }
+                if (filling == null) {
+                    filling = acquire(this);
+                    filling.position(4);
+                }
+                int n = Math.min(filling.remaining(), length - offset);
+                filling.put(pcm, offset, n);
+                offset += n;
+                if (!filling.hasRemaining()) {
+                    publish();
+                }
+            }
+        }
+
+        /** hands the filling chunk to the selector thread as a pcm frame, render thread */
+        void publish() {
+            ByteBuffer buffer = filling;
+            filling = null;
+            if (buffer == null) return;
+            if (buffer.position() == 4) {
+                release(buffer);
+                return;
+            }
+            buffer.putInt(0, buffer.position() - 4);
+            buffer.flip();
+            bytes += buffer.remaining() - 4;
+            offer(buffer);
+        }
+
+        /** queues the end of pcm and the status, render thread */
+        void finish(String error) {
+            publish();
+            offer(status(error));
+        }
+
+        private void offer(ByteBuffer buffer) {
+            outbound.offer(buffer);
+            if (closed) {
+                drain();
+            }
+            notifySelector(this);
+        }
+
+        /** returns all pending buffers to the pool */
+        void drain() {
+            ByteBuffer buffer;
+            while ((buffer = outbound.poll()) != null) {
+                release(buffer);
+            }
+        }
+    }
+
+    /**
+     * @param socketPath an existing file is replaced
+     */
+    public D77Daemon(Path socketPath) throws IOException, MidiUnavailableException {
+        this.socketPath = socketPath;
+
+        synthesizer = new D77Synthesizer(false);
+        synthesizer.open();
+
+        ServerSocketChannel server = null;
+        Selector selector = null;
+        try {
+            Files.deleteIfExists(socketPath);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException | RuntimeException e) {
+            if (selector != null) {
+                selector.close();
+            }
+            if (server != null) {
+                server.close();
+                Files.deleteIfExists(socketPath);
+            }
+            synthesizer.close();
+            throw e;
+        }
+        this.server = server;
+        this.selector = selector;
+    }
+
+    /**
+     * Serves until {@link #close()} on the caller thread.
+     *
+     * @throws IllegalStateException already served or closed
+     * @throws IOException the render thread is stopped by an error
+     */
+    public void serve() throws IOException {
+        synchronized (this) {
+            if (serving || closed) {
+                throw new IllegalStateException("already served or closed");
+            }
+            serving = true;
+            running = true;
+        }
+        renderThread = new Thread(this::renderLoop, "d77-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+logger.log(Level.INFO, "listening: " + socketPath);
+
+        try {
+            long lastReap = System.nanoTime();
+            while (running) {
+                selector.select(1000);
+
+                Session session;
+                while ((session = updated.poll()) != null) {
+                    flush(session);
+                }
+
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read((Session) key.attachment());
+                        } else if (key.isWritable()) {
+                            write((Session) key.attachment());
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Session s) {
+                            s.error = e.getMessage();
+                            closeSession(s);
+                        } else {
+                            logger.log(Level.ERROR, e.getMessage(), e);
+                        }
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - lastReap > TimeUnit.MILLISECONDS.toNanos(1000)) {
+                    reap(now);
+                    lastReap = now;
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Session s) {
+                    closeSession(s);
+                }
+            }
+            renderThread.interrupt();
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+                logger.log(Level.ERROR, e.getMessage(), e);
+            }
+            cleanup();
+            stopped.countDown();
+        }
+        if (fatal != null) {
+            throw new IOException("render thread stopped", fatal);
+        }
+    }
+
+    private void cleanup() throws IOException {
+        try {
+            selector.close();
+            server.close();
+            Files.deleteIfExists(socketPath);
+        } finally {
+            synthesizer.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Session session = new Session(channel);
+logger.log(Level.DEBUG, "session #" + session.id + ": accepted");
+    }
+
+    private void read(Session session) throws IOException {
+        if (session.payload == null) {
+            if (session.channel.read(session.header) < 0) {
+                throw new IOException("eof in header");
+            }
+            session.lastProgress = System.nanoTime();
+            if (session.header.hasRemaining()) return;
+            byte type = session.header.get(0);
+            int length = session.header.getInt(1);
+            if (type != TYPE_SMF && type != TYPE_STREAM) {
+                reject(session, "unknown type: " + type);
+                return;
+            }
+            if (length <= 0 || length > maxPayload) {
+                reject(session, "illegal length: " + length);
+                return;
+            }
+            if (pending.addAndGet(length) > maxPending) {
+                pending.addAndGet(-length);
+                reject(session, "busy: too many pending requests");
+                return;
+            }
+            session.reserved.set(length);
+            // grows as bytes arrive, the length is not trusted
+            session.payload = ByteBuffer.allocate(Math.min(length, CHUNK_SIZE));
+        }
+        int length = session.header.getInt(1);
+        if (!session.payload.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(length, session.payload.capacity() * 2L));
+            session.payload.flip();
+            grown.put(session.payload);
+            session.payload = grown;
+        }
+        if (session.channel.read(session.payload) < 0) {
+            throw new IOException("eof in payload");
+        }
+        session.lastProgress = System.nanoTime();
+        if (session.payload.position() < length) return;
+
+        session.requested = true;
+        session.key.interestOps(0);
+        session.queued = System.nanoTime();
+        jobs.offer(session);
+    }
+
+    /** queues the end of pcm and the error status without rendering, then closes after it is sent, selector thread */
+    private void reject(Session session, String error) {
+        session.error = error;
+        session.requested = true;
+        session.done = true;
+        session.outbound.offer(status(error));
+        session.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /** the end of pcm and the status frame */
+    private static ByteBuffer status(String error) {
+        byte[] message = error == null ? new byte[0] : error.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + message.length);
+        buffer.putInt(0);
+        buffer.put(error == null ? STATUS_OK : STATUS_ERROR);
+        buffer.putInt(message.length);
+        buffer.put(message);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void write(Session session) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = session.outbound.peek()) != null) {
+            int n = session.channel.write(buffer);
+            if (n > 0) {
+                long now = System.nanoTime();
+                session.lastProgress = now;
+                if (session.firstByte == 0) {
+                    session.firstByte = now;
+                }
+                session.sent += n;
+            }
+            if (buffer.hasRemaining()) return;
+            session.outbound.poll();
+            release(buffer);
+        }
+        update(session);
+    }
+
+    /** selector thread */
+    private void flush(Session session) {
+        if (session.closed) return;
+        if (session.key.interestOps() == 0) {
+            // the client has been waiting for the synth, not the other way around
+            session.lastProgress = System.nanoTime();
+        }
+        update(session);
+    }
+
+    /**
+     * closes the session only when done and everything is sent, selector thread.
+     * done must be read before outbound, the render thread queues the last frames before setting done.
+     */
+    private void update(Session session) {
+        boolean done = session.done;
+        if (!session.outbound.isEmpty()) {
+            session.key.interestOps(SelectionKey.OP_WRITE);
+        } else if (done) {
+            closeSession(session);
+        } else {
+            session.key.interestOps(0);
+        }
+    }
+
+    /** drops clients not reading their request or response, selector thread */
+    private void reap(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Session s && !s.closed &&
+                    (!s.requested || !s.outbound.isEmpty()) &&
+                    now - s.lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT)) {
+                s.error = "client stalled";
+                closeSession(s);
+            }
+        }
+    }
+
+    /** selector thread */
+    private void closeSession(Session session) {
+        if (session.closed) return;
+        session.closed = true;
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            logger.log(Level.DEBUG, e.getMessage());
+        }
+        session.drain();
+        unreserve(session);
+        report(session);
+    }
+
+    /** returns the payload bytes of the session to {@link #pending}, any thread */
+    private void unreserve(Session session) {
+        pending.addAndGet(-session.reserved.getAndSet(0));
+    }
+
+    private void report(Session session) {
+        long end = System.nanoTime();
+        if (!session.done) {
+logger.log(Level.INFO, "session #%d: closed before completion: %s".formatted(session.id, session.error));
+            return;
+        }
+        if (session.started == 0) {
+            logger.log(Level.WARNING, "session #%d: rejected: %s".formatted(session.id, session.error));
+            return;
+        }
+        double seconds = session.bytes / 4d / synthesizer.getSamplingFreq();
+        double renderSeconds = (session.rendered - session.started) / 1e9;
+        logger.log(session.error == null ? Level.INFO : Level.WARNING,
+                "session #%d: %s, queue %.1f ms, first byte %.1f ms, render %.1f ms (%.1fx realtime), total %.1f ms, %d events, %d pcm bytes, %.1f KB/s".formatted(
+                        session.id,
+                        session.error == null ? "ok" : session.error,
+                        (session.started - session.queued) / 1e6,
+                        session.firstByte == 0 ? 0 : (session.firstByte - session.queued) / 1e6,
+                        renderSeconds * 1e3,
+                        renderSeconds == 0 ? 0 : seconds / renderSeconds,
+                        (end - session.accepted) / 1e6,
+                        session.events,
+                        session.bytes,
+                        session.sent / 1024d / ((end - session.accepted) / 1e9)));
+    }
+
+    /**
+     * a pooled direct buffer, allocated while under the budget, render thread.
+     * when all are in flight, waits for the selector thread to release one.
+     *
+     * @throws IOException no buffer is released for the stall timeout, or the session is closed
+     */
+    private ByteBuffer acquire(Session session) throws IOException {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) return buffer;
+        if (allocated < POOL_SIZE) {
+            allocated++;
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT);
+        try {
+            while (!session.closed) {
+                buffer = pool.poll(100, TimeUnit.MILLISECONDS);
+                if (buffer != null) return buffer;
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("out of buffers: clients are not reading");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        throw new IOException("session closed");
+    }
+
+    /** pooled buffers go back to the pool, status frames are left to gc */
+    private void release(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            buffer.clear();
+            pool.offer(buffer);
+        }
+    }
+
+    private void notifySelector(Session session) {
+        updated.offer(session);
+        selector.wakeup();
+    }
+
+    /** the only thread touching the synth */
+    private void renderLoop() {
+        while (running) {
+            Session session;
+            try {
+                session = jobs.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (session.closed) continue;
+
+            session.started = System.nanoTime();
+            String error = null;
+            try {
+                int freq = synthesizer.getSamplingFreq();
+                session.payload.flip();
+                D77EventStream stream;
+                if (session.header.get(0) == TYPE_SMF) {
+                    stream = D77EventStream.compile(MidiSystem.getSequence(new ByteArrayInputStream(session.payload.array())), freq);
+                } else {
+                    stream = new D77EventStream(session.payload);
+                }
+                session.payload = null;
+                unreserve(session);
+                session.events = stream.getEvents();
+                if ((long) stream.getLengthInSamples() + (long) TAIL * freq > (long) maxSeconds * freq) {
+                    throw new IllegalArgumentException("too long: " + stream.getLengthInSamples() / freq + " s > " + maxSeconds + " s");
+                }
+
+                synthesizer.render(stream, TAIL * freq, session::write);
+            } catch (Throwable t) {
+                error = t.getMessage() != null ? t.getMessage() : t.toString();
+                session.error = error;
+                if (t instanceof Error) {
+                    // the synth may be broken, stop rather than failing every request after this
+                    logger.log(Level.ERROR, error, t);
+                    fatal = t;
+                    running = false;
+                } else {
+                    logger.log(Level.DEBUG, error, t);
+                }
+            } finally {
+                session.rendered = System.nanoTime();
+                if (!session.closed) {
+                    session.finish(error);
+                } else if (session.filling != null) {
+                    release(session.filling);
+                    session.filling = null;
+                }
+                session.done = true;
+                notifySelector(session);
+            }
+        }
+        selector.wakeup();
+    }
+
+    /** stops serving and waits for the cleanup, also releases the synth when never served */
+    @Override
+    public void close() throws IOException {
+        boolean wasServing;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            wasServing = serving;
+            running = false;
+        }
+        if (!wasServing) {
+            cleanup();
+            return;
+        }
+        selector.wakeup();
+        try {
+            stopped.await(STALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            logger.log(Level.ERROR, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param args [0] socket path (optional)
+     */
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : System.getProperty("vavi.sound.midi.d77.daemon.socket", Paths.get(System.getProperty("java.io.tmpdir"), "d77.sock").toString());
+        D77Daemon daemon = new D77Daemon(Paths.get(path));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                logger.log(Level.ERROR, e.getMessage(), e);
+            }
+        }));
+        daemon.serve();
+    }
+}
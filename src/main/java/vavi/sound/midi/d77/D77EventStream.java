@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+
+/**
+ * Precompiled event stream for the D-77.
+ * <p>
+ * A {@link Sequence} is flattened once into a compact binary form, so that
+ * repeated renders do not need to parse the SMF nor walk {@link MidiEvent}s again.
+ * the stream can be saved and memory mapped later.
+ * <pre>
+ * header:
+ *   int  magic         'D77E'
+ *   int  version       1
+ *   int  samplingFreq
+ *   int  events
+ *   int  maxSysexLength
+ *   int  lengthInSamples
+ * event: (4 bytes aligned)
+ *   int  sampleOffset
+ *   int  message       packed short message (status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16)
+ *                      or sysex (0xf0 or 0xf7 | length &lt;&lt; 8) followed by length bytes
+ * </pre>
+ * all values are big endian. meta events are not stored, tempo changes are
+ * already applied to the sample offsets.
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+public class D77EventStream {
+
+    /** 'D77E' */
+    public static final int MAGIC = 0x44373745;
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 4 * 6;
+
+    /** the whole stream, position 0 is the header */
+    private final ByteBuffer buffer;
+
+    private final int samplingFreq;
+    private final int events;
+    private final int maxSysexLength;
+    private final int lengthInSamples;
+
+    /**
+     * @param buffer a compiled stream, read from the current position
+     * @throws IllegalArgumentException the buffer is not a valid compiled stream
+     */
+    public D77EventStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (this.buffer.remaining() < HEADER_SIZE || this.buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not a d77 event stream");
+        }
+        if (this.buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("unsupported version: " + this.buffer.getInt(4));
+        }
+        this.samplingFreq = this.buffer.getInt(8);
+        this.events = this.buffer.getInt(12);
+        this.maxSysexLength = this.buffer.getInt(16);
+        this.lengthInSamples = this.buffer.getInt(20);
+        validate();
+    }
+
+    /** walks all events once, so that a cursor never goes out of the buffer */
+    private void validate() {
+        if (samplingFreq <= 0) {
+            throw new IllegalArgumentException("illegal sampling frequency: " + samplingFreq);
+        }
+        if (events < 0) {
+            throw new IllegalArgumentException("illegal events: " + events);
+        }
+        if (maxSysexLength < 0) {
+            throw new IllegalArgumentException("illegal max sysex length: " + maxSysexLength);
+        }
+        int limit = buffer.limit();
+        int position = HEADER_SIZE;
+        int last = 0;
+        for (int i = 0; i < events; i++) {
+            if (limit - position < 8) {
+                throw new IllegalArgumentException("event #" + i + " out of buffer");
+            }
+            int sampleOffset = buffer.getInt(position);
+            if (sampleOffset < last) {
+                throw new IllegalArgumentException("event #" + i + " offset decreasing: " + sampleOffset);
+            }
+            last = sampleOffset;
+            int message = buffer.getInt(position + 4);
+            position += 8;
+            if (isSysex(message)) {
+                int length = message >>> 8;
+                if (length == 0) {
+                    throw new IllegalArgumentException("event #" + i + " empty sysex");
+                }
+                if (length > maxSysexLength) {
+                    throw new IllegalArgumentException("event #" + i + " sysex too long: " + length);
+                }
+                if (limit - position < align(length)) {
+                    throw new IllegalArgumentException("event #" + i + " sysex out of buffer");
+                }
+                position += align(length);
+            }
+        }
+        if (lengthInSamples < last) {
+            throw new IllegalArgumentException("length " + lengthInSamples + " is before the last event " + last);
+        }
+    }
+
+    /** sampling frequency the offsets are computed for */
+    public int getSamplingFreq() {
+        return samplingFreq;
+    }
+
+    /** number of events */
+    public int getEvents() {
+        return events;
+    }
+
+    /** the longest sysex in this stream, for preallocating native memory */
+    public int getMaxSysexLength() {
+        return maxSysexLength;
+    }
+
+    /** offset of the last event (end of track) in samples */
+    public int getLengthInSamples() {
+        return lengthInSamples;
+    }
+
+    /** @return a read only view of the whole stream */
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** @return a new cursor positioned at the first event */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /** Walks events in order, not thread safe. */
+    public class Cursor {
+
+        private int position = HEADER_SIZE;
+        private int index;
+
+        private Cursor() {
+        }
+
+        /** @return false when all events are consumed */
+        public boolean hasNext() {
+            return index < events;
+        }
+
+        /** sample offset of the next event, call only when {@link #hasNext()} */
+        public int sampleOffset() {
+            return buffer.getInt(position);
+        }
+
+        /** packed message of the next event, call only when {@link #hasNext()} */
+        public int message() {
+            return buffer.getInt(position + 4);
+        }
+
+        /** @return true if the next event is a sysex */
+        public boolean isSysex() {
+            return D77EventStream.isSysex(message());
+        }
+
+        /** length of the next sysex */
+        public int sysexLength() {
+            return message() >>> 8;
+        }
+
+        /** copies the next sysex bytes into dst at its position */
+        public void sysex(byte[] dst) {
+            buffer.get(position + 8, dst, 0, sysexLength());
+        }
+
+        /** advances to the next event */
+        public void next() {
+            int message = message();
+            position += 8;
+            if (D77EventStream.isSysex(message)) {
+                position += align(message >>> 8);
+            }
+            index++;
+        }
+    }
+
+    private static boolean isSysex(int message) {
+        int status = message & 0xff;
+        return status == SysexMessage.SYSTEM_EXCLUSIVE || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE;
+    }
+
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /** writes the stream to a file */
+    public void write(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = getBuffer();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+    }
+
+    /** memory maps a stream written by {@link #write(Path)} */
+    public static D77EventStream map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new D77EventStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** (tick, event) sorted by tick then by track order */
+    private record Entry(long tick, int order, MidiMessage message) {}
+
+    /**
+     * Compiles a sequence.
+     *
+     * @param sequence source
+     * @param samplingFreq the sampling frequency the stream will be rendered at
+     * @throws IllegalArgumentException longer than {@link Integer#MAX_VALUE} samples or a broken tempo event
+     */
+    public static D77EventStream compile(Sequence sequence, int samplingFreq) {
+        List<Entry> entries = new ArrayList<>();
+        int order = 0;
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                entries.add(new Entry(event.getTick(), order++, event.getMessage()));
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::tick).thenComparingInt(Entry::order));
+
+        float divisionType = sequence.getDivisionType();
+        int resolution = sequence.getResolution();
+
+        // pass 1: size
+        int size = HEADER_SIZE;
+        for (Entry entry : entries) {
+            if (entry.message instanceof ShortMessage sm && !isSysex(sm.getStatus())) {
+                size += 8;
+            } else if (entry.message instanceof SysexMessage sysex) {
+                size += 8 + align(sysex.getLength());
+            }
+        }
+
+        // pass 2: body
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        buffer.position(HEADER_SIZE);
+        int events = 0;
+        int maxSysexLength = 0;
+        int sampleOffset = 0;
+
+        long tempo = 500_000; // µs per quarter note, 120 bpm
+        long lastTick = 0;
+        double micros = 0;
+        for (Entry entry : entries) {
+            if (divisionType == Sequence.PPQ) {
+                micros += (double) (entry.tick - lastTick) * tempo / resolution;
+            } else {
+                micros += (entry.tick - lastTick) * 1_000_000d / (divisionType * resolution);
+            }
+            lastTick = entry.tick;
+            try {
+                sampleOffset = Math.toIntExact(Math.round(micros * samplingFreq / 1_000_000d));
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("too long: tick " + entry.tick + " exceeds " + Integer.MAX_VALUE + " samples");
+            }
+
+            if (entry.message instanceof ShortMessage sm) {
+                if (isSysex(sm.getStatus())) {
+                    continue; // a lone 0xf0 or 0xf7 status is not a short message for the driver
+                }
+                buffer.putInt(sampleOffset);
+                buffer.putInt((sm.getStatus() & 0xff) | ((sm.getData1() & 0x7f) << 8) | ((sm.getData2() & 0x7f) << 16));
+                events++;
+            } else if (entry.message instanceof SysexMessage sysex) {
+                byte[] data = sysex.getMessage();
+                buffer.putInt(sampleOffset);
+                buffer.putInt((data[0] & 0xff) | (data.length << 8));
+                buffer.put(data);
+                buffer.position(buffer.position() + align(data.length) - data.length);
+                maxSysexLength = Math.max(maxSysexLength, data.length);
+                events++;
+            } else if (entry.message instanceof MetaMessage meta && meta.getType() == 0x51) {
+                byte[] data = meta.getData();
+                if (data.length < 3) {
+                    throw new IllegalArgumentException("broken tempo at tick " + entry.tick + ", length: " + data.length);
+                }
+                tempo = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+            }
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, samplingFreq);
+        buffer.putInt(12, events);
+        buffer.putInt(16, maxSysexLength);
+        buffer.putInt(20, sampleOffset);
+        buffer.flip();
+        return new D77EventStream(buffer);
+    }
+}
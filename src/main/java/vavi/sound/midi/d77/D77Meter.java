@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * Streaming level meter for the rendered output (16bit signed little endian stereo).
+ * <p>
+ * {@link #process(byte[], int)} is called by the render thread for every block,
+ * it reads the pcm in place and allocates nothing. results are published per block,
+ * a monitoring thread polls them with {@link #snapshot()} without blocking the render thread.
+ * peak hold and clipped samples are accumulated between snapshots, so a slow poller
+ * does not miss a short clip. they are consumed by the snapshot, use one monitoring thread per meter.
+ * <p>
+ * loudness is the ITU-R BS.1770-4 integrated loudness of both channels (weight 1):
+ * K weighting, 400ms blocks with 75% overlap, the absolute gate at -70 LUFS and the relative gate at -10 LU.
+ * gated blocks are kept in a 0.1 LU histogram, so the relative gate is applied at that resolution.
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+public class D77Meter {
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** absolute gate, BS.1770 */
+    private static final double GATE = -70;
+    /** relative gate, BS.1770 */
+    private static final double RELATIVE_GATE = -10;
+    /** histogram range of block loudness, LUFS */
+    private static final double HISTOGRAM_MAX = 10;
+    /** histogram bins per LU */
+    private static final int HISTOGRAM_RESOLUTION = 10;
+
+    /**
+     * peak and rms are of the last block, peak hold and clipped are since the last snapshot.
+     * values are full scale = 1, loudness is LUFS, clipped is a number of samples at full scale.
+     */
+    public record Levels(double peakL, double peakR, double rmsL, double rmsR,
+                         double peakHoldL, double peakHoldR, long clipped,
+                         double loudness, long frames) {
+
+        /** @return dBFS, -Infinity for 0 */
+        public static double dB(double value) {
+            return 20 * Math.log10(value);
+        }
+    }
+
+    /**
+     * only the render thread takes the write lock and readers only read optimistically,
+     * so the write lock is never contended and the render thread never waits.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    // published, guarded by lock
+    private double peakL;
+    private double peakR;
+    private double rmsL;
+    private double rmsR;
+    private double loudness = Double.NEGATIVE_INFINITY;
+    private long frames;
+
+    // accumulated by the render thread, consumed by the snapshot
+    /** max abs sample, left &lt;&lt; 32 | right */
+    private final AtomicLong peakHold = new AtomicLong();
+    private final AtomicLong clipped = new AtomicLong();
+
+    // render thread only
+    /** K weighting, stage 1 (shelving) and stage 2 (high pass) coefficients, a0 = 1 */
+    private final double s1b0, s1b1, s1b2, s1a1, s1a2;
+    private final double s2a1, s2a2;
+    /** filter states, transposed direct form II, [channel][stage * 2 + n] */
+    private final double[][] z = new double[2][4];
+    /** frames of a 100ms step, a gating block is 4 steps */
+    private final int stepFrames;
+    private int stepCount;
+    private double stepSum;
+    /** weighted sum of squares of the last 4 steps */
+    private final double[] steps = new double[4];
+    private long stepTotal;
+    /** gated blocks, sum of mean squares and counts by loudness */
+    private final double[] histogramSum = new double[(int) ((HISTOGRAM_MAX - GATE) * HISTOGRAM_RESOLUTION) + 1];
+    private final long[] histogramCount = new long[histogramSum.length];
+    private double integrated = Double.NEGATIVE_INFINITY;
+    private long totalFrames;
+
+    /** set by {@link #reset()}, cleared by the render thread */
+    private volatile boolean resetRequested;
+
+    /**
+     * @param samplingFreq of the rendered output
+     */
+    public D77Meter(int samplingFreq) {
+        this.stepFrames = samplingFreq / 10;
+
+        // BS.1770 K weighting for any sampling frequency (the same derivation as libebur128)
+        double f0 = 1681.974450955533;
+        double g = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / samplingFreq);
+        double vh = Math.pow(10, g / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        s1b0 = (vh + vb * k / q + k * k) / a0;
+        s1b1 = 2 * (k * k - vh) / a0;
+        s1b2 = (vh - vb * k / q + k * k) / a0;
+        s1a1 = 2 * (k * k - 1) / a0;
+        s1a2 = (1 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / samplingFreq);
+        a0 = 1 + k / q + k * k;
+        s2a1 = 2 * (k * k - 1) / a0;
+        s2a2 = (1 - k / q + k * k) / a0;
+    }
+
+    /** K weighting of one sample, full scale = 1 */
+    private double weight(double x, double[] z) {
+        double y = s1b0 * x + z[0];
+        z[0] = s1b1 * x - s1a1 * y + z[1];
+        z[1] = s1b2 * x - s1a2 * y;
+        // stage 2, b = {1, -2, 1}
+        double w = y + z[2];
+        z[2] = -2 * y - s2a1 * w + z[3];
+        z[3] = y - s2a2 * w;
+        return w;
+    }
+
+    /**
+     * Measures one rendered block.
+     *
+     * @param pcm 16bit signed little endian stereo
+     * @param length in bytes
+     */
+    public void process(byte[] pcm, int length) {
+        if (resetRequested) {
+            resetRequested = false;
+            for (double[] zc : z) {
+                Arrays.fill(zc, 0);
+            }
+            stepCount = 0;
+            stepSum = 0;
+            stepTotal = 0;
+            Arrays.fill(histogramSum, 0);
+            Arrays.fill(histogramCount, 0);
+            integrated = Double.NEGATIVE_INFINITY;
+            totalFrames = 0;
+            peakHold.set(0);
+            clipped.set(0);
+        }
+
+        double fs = 32768d;
+        double[] zl = z[0], zr = z[1];
+        int l = 0, r = 0;
+        int clips = 0;
+        double sumL = 0, sumR = 0;
+        int n = length / 4;
+        for (int i = 0; i < n; i++) {
+            int sl = (short) SHORT.get(pcm, i * 4);
+            int sr = (short) SHORT.get(pcm, i * 4 + 2);
+            int al = Math.abs(sl);
+            int ar = Math.abs(sr);
+            l = Math.max(l, al);
+            r = Math.max(r, ar);
+            if (al >= Short.MAX_VALUE) clips++;
+            if (ar >= Short.MAX_VALUE) clips++;
+            sumL += sl * sl;
+            sumR += sr * sr;
+
+            double wl = weight(sl / fs, zl);
+            double wr = weight(sr / fs, zr);
+            stepSum += wl * wl + wr * wr;
+            if (++stepCount == stepFrames) {
+                step();
+            }
+        }
+        totalFrames += n;
+
+        peakHold.accumulateAndGet(((long) l << 32) | r, D77Meter::max);
+        if (clips > 0) {
+            clipped.addAndGet(clips);
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            peakL = l / fs;
+            peakR = r / fs;
+            rmsL = n == 0 ? 0 : Math.sqrt(sumL / n) / fs;
+            rmsR = n == 0 ? 0 : Math.sqrt(sumR / n) / fs;
+            loudness = integrated;
+            frames = totalFrames;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** a 100ms step is completed, measures the 400ms block ending here */
+    private void step() {
+        steps[(int) (stepTotal++ % 4)] = stepSum;
+        stepSum = 0;
+        stepCount = 0;
+        if (stepTotal < 4) return;
+
+        double meanSquare = (steps[0] + steps[1] + steps[2] + steps[3]) / (4d * stepFrames);
+        double blockLoudness = toLufs(meanSquare);
+        if (blockLoudness <= GATE) return;
+        int bin = (int) Math.min((blockLoudness - GATE) * HISTOGRAM_RESOLUTION, histogramSum.length - 1);
+        histogramSum[bin] += meanSquare;
+        histogramCount[bin]++;
+
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < histogramSum.length; i++) {
+            sum += histogramSum[i];
+            count += histogramCount[i];
+        }
+        double relativeGate = toLufs(sum / count) + RELATIVE_GATE;
+        int from = (int) Math.max(0, Math.ceil((relativeGate - GATE) * HISTOGRAM_RESOLUTION));
+        sum = 0;
+        count = 0;
+        for (int i = from; i < histogramSum.length; i++) {
+            sum += histogramSum[i];
+            count += histogramCount[i];
+        }
+        integrated = count == 0 ? Double.NEGATIVE_INFINITY : toLufs(sum / count);
+    }
+
+    /** sum of channel mean squares of K weighted samples (full scale = 1) to LUFS */
+    private static double toLufs(double meanSquare) {
+        return -0.691 + 10 * Math.log10(meanSquare);
+    }
+
+    /** max of each packed channel */
+    private static long max(long a, long b) {
+        return (Math.max(a >>> 32, b >>> 32) << 32) | Math.max(a & 0xffffffffL, b & 0xffffffffL);
+    }
+
+    /**
+     * @return levels of the last processed block, never blocks the render thread.
+     *         peak hold and clipped are reset by this call.
+     */
+    public Levels snapshot() {
+        long hold = peakHold.getAndSet(0);
+        long clips = clipped.getAndSet(0);
+        double fs = 32768d;
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            Levels levels = new Levels(peakL, peakR, rmsL, rmsR, (hold >>> 32) / fs, (hold & 0xffffffffL) / fs, clips, loudness, frames);
+            if (lock.validate(stamp)) {
+                return levels;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Clears the integrated loudness and the filter states, e.g. at the start of a new song.
+     * the render thread clears and publishes on its next block.
+     */
+    public void reset() {
+        resetRequested = true;
+    }
+}
@@ -16,6 +16,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.sound.midi.Instrument;
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiMessage;
@@ -50,11 +51,19 @@ public class D77Synthesizer implements Synthesizer {
 
     private static final D77Driver lib = D77Driver.INSTANCE;
 
+    /** false: no audio line nor render thread, pcm is pulled by {@link #render} */
+    private final boolean realtime;
     private boolean isOpen;
     private SourceDataLine line;
     private Thread renderThread;
     private volatile boolean running;
     private final ConcurrentLinkedQueue<MidiMessage> messageQueue = new ConcurrentLinkedQueue<>();
+    private int samplingFreq;
+    /** a stream waiting to be taken by the render loop, stream null means stop */
+    private record Pending(D77EventStream stream) {}
+    private final AtomicReference<Pending> pending = new AtomicReference<>();
+    /** optional, null means no metering */
+    private volatile D77Meter meter;
 
     private static Pointer pData;
 
@@ -87,6 +96,18 @@ public class D77Synthesizer implements Synthesizer {
 
     static final Info info = new D77Info();
 
+    /** a realtime synthesizer playing to the default audio line */
+    public D77Synthesizer() {
+        this(true);
+    }
+
+    /**
+     * @param realtime false for offline rendering by {@link #render}
+     */
+    D77Synthesizer(boolean realtime) {
+        this.realtime = realtime;
+    }
+
     @Override
     public Info getDeviceInfo() {
         return info;
@@ -134,6 +155,7 @@ public class D77Synthesizer implements Synthesizer {
             settings.dwTimeReso = 80;
 
             lib.D77_ValidateSettings(settings);
+            samplingFreq = settings.dwSamplingFreq;
 
             if (lib.D77_InitializeSynth(settings.dwSamplingFreq, settings.dwPolyphony, settings.dwTimeReso) == 0) {
                 throw new MidiUnavailableException("Failed to initialize synth");
@@ -161,16 +183,18 @@ public class D77Synthesizer implements Synthesizer {
             lib.D77_FreeMemory(settingsMemory, settings.size());
             lib.D77_FreeMemory(paramsMemory, params.size());
 
-            AudioFormat format = new AudioFormat(settings.dwSamplingFreq, 16, 2, true, false);
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(format, 8192); // Lower buffer size for lower latency/jitter
-            line.start();
-
-            running = true;
-            renderThread = new Thread(this::renderLoop);
-            renderThread.setDaemon(true);
-            renderThread.start();
+            if (realtime) {
+                AudioFormat format = new AudioFormat(settings.dwSamplingFreq, 16, 2, true, false);
+                DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+                line = (SourceDataLine) AudioSystem.getLine(info);
+                line.open(format, 8192); // Lower buffer size for lower latency/jitter
+                line.start();
+
+                running = true;
+                renderThread = new Thread(this::renderLoop);
+                renderThread.setDaemon(true);
+                renderThread.start();
+            }
 
             isOpen = true;
         } catch (IOException | LineUnavailableException e) {
@@ -178,12 +202,60 @@ public class D77Synthesizer implements Synthesizer {
         }
     }
 
+    /**
+     * Plays a precompiled event stream from the next rendered block.
+     * events are fed to the synth by the render loop directly.
+     * a stream currently playing is stopped and its sounding notes are silenced.
+     *
+     * @param stream null to stop the current stream
+     * @throws IllegalArgumentException the stream is compiled for another sampling frequency
+     * @throws IllegalStateException not opened or not realtime, use {@link #render} instead
+     */
+    public void play(D77EventStream stream) {
+        if (!isOpen) {
+            throw new IllegalStateException("not open");
+        }
+        if (!realtime) {
+            throw new IllegalStateException("not realtime");
+        }
+        if (stream != null && stream.getSamplingFreq() != samplingFreq) {
+            throw new IllegalArgumentException("sampling frequency mismatch: " + stream.getSamplingFreq() + " != " + samplingFreq);
+        }
+        pending.set(new Pending(stream));
+    }
+
+    /** sampling frequency of the rendered pcm, valid after opened */
+    int getSamplingFreq() {
+        return samplingFreq;
+    }
+
+    /**
+     * Sets a level meter for the rendered output.
+     *
+     * @param meter null to stop metering
+     */
+    public void setMeter(D77Meter meter) {
+        this.meter = meter;
+    }
+
+    /** @return current meter, null if not set */
+    public D77Meter getMeter() {
+        return meter;
+    }
+
     private void renderLoop() {
         int samplesPerCall = lib.D77_GetRenderedSamplesPerCall();
         int bufferSize = samplesPerCall * 2 * 2; // stereo * 16bit
         Pointer sampleBuffer = lib.D77_AllocateMemory(bufferSize);
         byte[] byteBuffer = new byte[bufferSize];
 
+        D77EventStream.Cursor cursor = null;
+        long streamPosition = 0;
+        // sysex must be in memory allocated by the driver, so it is copied via these
+        Pointer sysexMemory = null;
+        int sysexMemorySize = 0;
+        byte[] sysexBuffer = null;
+
         try {
             while (running) {
                 MidiMessage message;
@@ -202,8 +274,53 @@ public class D77Synthesizer implements Synthesizer {
                     }
                 }
 
+                Pending pending = this.pending.getAndSet(null);
+                if (pending != null) {
+                    if (cursor != null) {
+                        silence();
+                    }
+                    D77EventStream stream = pending.stream;
+                    cursor = stream != null ? stream.cursor() : null;
+                    streamPosition = 0;
+                    if (stream != null && stream.getMaxSysexLength() > sysexMemorySize) {
+                        if (sysexMemory != null) {
+                            lib.D77_FreeMemory(sysexMemory, sysexMemorySize);
+                        }
+                        sysexMemory = lib.D77_AllocateMemory(stream.getMaxSysexLength());
+                        if (sysexMemory != null) {
+                            sysexMemorySize = stream.getMaxSysexLength();
+                            sysexBuffer = new byte[sysexMemorySize];
+                        } else {
+                            // retried by the next stream
+                            sysexMemorySize = 0;
+                            sysexBuffer = null;
+logger.log(Level.ERROR, "stream not played: failed to allocate memory for sysex: " + stream.getMaxSysexLength());
+                            cursor = null;
+                        }
+                    }
+                }
+                if (cursor != null) {
+                    try {
+                        feed(cursor, streamPosition + samplesPerCall, sysexMemory, sysexBuffer);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.ERROR, "stream stopped: " + e.getMessage(), e);
+                        silence();
+                        cursor = null;
+                    }
+                }
+
                 if (lib.D77_RenderSamples(sampleBuffer) != 0) {
+                    if (cursor != null) {
+                        streamPosition += samplesPerCall;
+                        if (!cursor.hasNext()) {
+                            cursor = null;
+                        }
+                    }
                     sampleBuffer.read(0, byteBuffer, 0, bufferSize);
+                    D77Meter meter = this.meter;
+                    if (meter != null) {
+                        meter.process(byteBuffer, bufferSize);
+                    }
                     line.write(byteBuffer, 0, byteBuffer.length);
                 } else {
                     Thread.yield();
@@ -213,6 +330,121 @@ public class D77Synthesizer implements Synthesizer {
             if (sampleBuffer != null) {
                 lib.D77_FreeMemory(sampleBuffer, bufferSize);
             }
+            if (sysexMemory != null) {
+                lib.D77_FreeMemory(sysexMemory, sysexMemorySize);
+            }
+        }
+    }
+
+    /** All Sound Off and All Notes Off on all channels */
+    private static void silence() {
+        for (int i = 0; i < 16; i++) {
+            lib.D77_MidiMessageShort((0xB0 | i) | (120 << 8));
+            lib.D77_MidiMessageShort((0xB0 | i) | (123 << 8));
+        }
+    }
+
+    /** GM System On */
+    private static final byte[] GM_SYSTEM_ON = {(byte) 0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte) 0xf7};
+
+    /** silences and resets programs, controllers, rpn and sysex state of all channels */
+    private static void reset() throws IOException {
+        silence();
+        Pointer p = lib.D77_AllocateMemory(GM_SYSTEM_ON.length);
+        if (p == null) throw new IOException("Failed to allocate memory for reset");
+        try {
+            p.write(0, GM_SYSTEM_ON, 0, GM_SYSTEM_ON.length);
+            lib.D77_MidiMessageLong(p, GM_SYSTEM_ON.length);
+        } finally {
+            lib.D77_FreeMemory(p, GM_SYSTEM_ON.length);
+        }
+    }
+
+    /** sends events of the cursor before blockEnd to the driver */
+    private static void feed(D77EventStream.Cursor cursor, long blockEnd, Pointer sysexMemory, byte[] sysexBuffer) {
+        while (cursor.hasNext() && cursor.sampleOffset() < blockEnd) {
+            if (cursor.isSysex()) {
+                int length = cursor.sysexLength();
+                if (sysexMemory == null || length > sysexBuffer.length) {
+logger.log(Level.WARNING, "sysex skipped, length: " + length);
+                } else {
+                    cursor.sysex(sysexBuffer);
+                    sysexMemory.write(0, sysexBuffer, 0, length);
+                    lib.D77_MidiMessageLong(sysexMemory, length);
+                }
+            } else {
+                lib.D77_MidiMessageShort(cursor.message());
+            }
+            cursor.next();
+        }
+    }
+
+    /** Receives rendered pcm blocks (16bit signed little endian stereo). */
+    @FunctionalInterface
+    public interface PcmSink {
+        /** @param pcm valid until this method returns */
+        void write(byte[] pcm, int length) throws IOException;
+    }
+
+    /**
+     * Renders a stream offline on the caller thread as fast as possible.
+     * the synth is reset by GM System On before rendering, so nothing is carried over from
+     * the previous render. only for a synthesizer created not realtime.
+     *
+     * @param tailSamples samples rendered after the last event for release and reverb
+     * @throws IllegalStateException not opened or realtime
+     * @throws IllegalArgumentException the stream is compiled for another sampling frequency
+     * @throws IOException thrown by the sink, rendering is aborted
+     */
+    void render(D77EventStream stream, int tailSamples, PcmSink sink) throws IOException {
+        if (!isOpen || realtime) {
+            throw new IllegalStateException("not opened for offline rendering");
+        }
+        if (stream.getSamplingFreq() != samplingFreq) {
+            throw new IllegalArgumentException("sampling frequency mismatch: " + stream.getSamplingFreq() + " != " + samplingFreq);
+        }
+
+        reset();
+
+        int samplesPerCall = lib.D77_GetRenderedSamplesPerCall();
+        int bufferSize = samplesPerCall * 2 * 2; // stereo * 16bit
+        Pointer sampleBuffer = lib.D77_AllocateMemory(bufferSize);
+        if (sampleBuffer == null) throw new IOException("Failed to allocate memory for samples");
+        byte[] byteBuffer = new byte[bufferSize];
+        int sysexMemorySize = stream.getMaxSysexLength();
+        Pointer sysexMemory = null;
+        if (sysexMemorySize > 0) {
+            sysexMemory = lib.D77_AllocateMemory(sysexMemorySize);
+            if (sysexMemory == null) {
+                lib.D77_FreeMemory(sampleBuffer, bufferSize);
+                throw new IOException("Failed to allocate memory for sysex");
+            }
+        }
+        byte[] sysexBuffer = new byte[sysexMemorySize];
+
+        try {
+            D77EventStream.Cursor cursor = stream.cursor();
+            long end = (long) stream.getLengthInSamples() + tailSamples;
+            long position = 0;
+            while (position < end) {
+                feed(cursor, position + samplesPerCall, sysexMemory, sysexBuffer);
+                if (lib.D77_RenderSamples(sampleBuffer) != 0) {
+                    position += samplesPerCall;
+                    sampleBuffer.read(0, byteBuffer, 0, bufferSize);
+                    D77Meter meter = this.meter;
+                    if (meter != null) {
+                        meter.process(byteBuffer, bufferSize);
+                    }
+                    sink.write(byteBuffer, bufferSize);
+                } else {
+                    Thread.yield();
+                }
+            }
+        } finally {
+            lib.D77_FreeMemory(sampleBuffer, bufferSize);
+            if (sysexMemory != null) {
+                lib.D77_FreeMemory(sysexMemory, sysexMemorySize);
+            }
         }
     }
 
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import vavi.util.Debug;
+import vavi.util.properties.annotation.Property;
+import vavi.util.properties.annotation.PropsEntity;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * D77DaemonTest.
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+@EnabledIf("localPropertiesExists")
+@PropsEntity(url = "file:local.properties")
+class D77DaemonTest {
+
+    static boolean localPropertiesExists() {
+        return Files.exists(Paths.get("local.properties"));
+    }
+
+    @Property(name = "vavi.sound.midi.d77.datafile")
+    String dataFile = "src/test/resources/dswebWDM.dat";
+
+    Path socket;
+    D77Daemon daemon;
+    Thread server;
+
+    @BeforeEach
+    void setup() throws Exception {
+        if (localPropertiesExists()) {
+            PropsEntity.Util.bind(this);
+        }
+
+        System.setProperty("vavi.sound.midi.d77.datafile", dataFile);
+
+        socket = Files.createTempDirectory("d77").resolve("d77.sock");
+        daemon = new D77Daemon(socket);
+        server = new Thread(() -> {
+            try {
+                daemon.serve();
+            } catch (Exception e) {
+                Debug.printStackTrace(e);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        daemon.close();
+        server.join();
+        Files.deleteIfExists(socket.getParent());
+    }
+
+    /** one second of C major chord */
+    static byte[] smf() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        for (int note : new int[] {60, 64, 67}) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100), 0));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0), 960));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 0, baos);
+        return baos.toByteArray();
+    }
+
+    /** @return {status, pcm bytes, message} */
+    static Object[] request(Path socket, byte type, byte[] payload) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+            dos.writeByte(type);
+            dos.writeInt(payload.length);
+            dos.write(payload);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            long total = 0;
+            int length;
+            while ((length = dis.readInt()) != 0) {
+                assertEquals(0, length % 4);
+                dis.skipNBytes(length);
+                total += length;
+            }
+            int status = dis.readByte();
+            byte[] message = new byte[dis.readInt()];
+            dis.readFully(message);
+            assertEquals(-1, dis.read());
+            return new Object[] {status, total, new String(message, StandardCharsets.UTF_8)};
+        }
+    }
+
+    @Test
+    @DisplayName("smf to pcm")
+    void test1() throws Exception {
+        Object[] result = request(socket, D77Daemon.TYPE_SMF, smf());
+Debug.println("result: " + result[0] + ", " + result[1] + " bytes, " + result[2]);
+        assertEquals(0, result[0]);
+        long bytes = (long) result[1];
+        assertTrue(bytes > 0);
+        assertEquals(0, bytes % 4);
+    }
+
+    @Test
+    @DisplayName("broken smf")
+    void test2() throws Exception {
+        Object[] result = request(socket, D77Daemon.TYPE_SMF, "not a midi file".getBytes(StandardCharsets.UTF_8));
+Debug.println("result: " + result[0] + ", " + result[1] + " bytes, " + result[2]);
+        assertEquals(1, result[0]);
+        assertEquals(0L, result[1]);
+    }
+
+    @Test
+    @DisplayName("unknown type")
+    void test3() throws Exception {
+        Object[] result = request(socket, (byte) 'X', smf());
+Debug.println("result: " + result[0] + ", " + result[1] + " bytes, " + result[2]);
+        assertEquals(1, result[0]);
+        assertEquals(0L, result[1]);
+        assertTrue(((String) result[2]).startsWith("unknown type"));
+    }
+}
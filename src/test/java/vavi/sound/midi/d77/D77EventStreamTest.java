@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * D77EventStreamTest. (no native library needed)
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+class D77EventStreamTest {
+
+    static final byte[] GM_SYSTEM_ON = {(byte) 0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte) 0xf7};
+
+    static MetaMessage tempo(int mpq) throws Exception {
+        byte[] data = {(byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq};
+        return new MetaMessage(0x51, data, data.length);
+    }
+
+    /** note on at 0, sysex at 480, note off at 960, 500000 µs/qn then 250000 µs/qn from 480 */
+    static Sequence sequence() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(tempo(500_000), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        track.add(new MidiEvent(tempo(250_000), 480));
+        track.add(new MidiEvent(new SysexMessage(GM_SYSTEM_ON, GM_SYSTEM_ON.length), 480));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 960));
+        return sequence;
+    }
+
+    @Test
+    void testTempo() throws Exception {
+        D77EventStream stream = D77EventStream.compile(sequence(), 44100);
+
+        assertEquals(44100, stream.getSamplingFreq());
+        assertEquals(3, stream.getEvents());
+        assertEquals(GM_SYSTEM_ON.length, stream.getMaxSysexLength());
+
+        D77EventStream.Cursor cursor = stream.cursor();
+        assertEquals(0, cursor.sampleOffset());
+        assertEquals(0x643c90, cursor.message());
+        cursor.next();
+        assertEquals(22050, cursor.sampleOffset());
+        cursor.next();
+        assertEquals(33075, cursor.sampleOffset());
+        assertEquals(0x3c80, cursor.message());
+        cursor.next();
+        assertFalse(cursor.hasNext());
+        assertTrue(stream.getLengthInSamples() >= 33075);
+    }
+
+    @Test
+    void testWriteMap() throws Exception {
+        D77EventStream stream = D77EventStream.compile(sequence(), 44100);
+        Path path = Files.createTempFile("d77", ".d77e");
+        try {
+            stream.write(path);
+            assertEquals(0, Files.size(path) % 4);
+
+            D77EventStream mapped = D77EventStream.map(path);
+            assertEquals(stream.getEvents(), mapped.getEvents());
+            assertEquals(stream.getLengthInSamples(), mapped.getLengthInSamples());
+
+            D77EventStream.Cursor cursor = mapped.cursor();
+            cursor.next();
+            assertTrue(cursor.isSysex());
+            assertEquals(GM_SYSTEM_ON.length, cursor.sysexLength());
+            byte[] sysex = new byte[mapped.getMaxSysexLength()];
+            cursor.sysex(sysex);
+            assertArrayEquals(GM_SYSTEM_ON, sysex);
+            cursor.next();
+            // 6 bytes sysex is padded to 8
+            assertFalse(cursor.isSysex());
+            assertEquals(0x3c80, cursor.message());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testIllegal() throws Exception {
+        ByteBuffer valid = D77EventStream.compile(sequence(), 44100).getBuffer();
+
+        ByteBuffer magic = copy(valid);
+        magic.putInt(0, 0x4d546864);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(magic));
+
+        ByteBuffer version = copy(valid);
+        version.putInt(4, 2);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(version));
+
+        ByteBuffer events = copy(valid);
+        events.putInt(12, 100);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(events));
+
+        ByteBuffer maxSysex = copy(valid);
+        maxSysex.putInt(16, 0);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(maxSysex));
+
+        ByteBuffer length = copy(valid);
+        length.putInt(20, 0);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(length));
+
+        ByteBuffer order = copy(valid);
+        order.putInt(D77EventStream.HEADER_SIZE, 44100); // first event after the second
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(order));
+
+        ByteBuffer truncated = copy(valid).limit(valid.limit() - 4);
+        assertThrows(IllegalArgumentException.class, () -> new D77EventStream(truncated));
+    }
+
+    @Test
+    void testCompileIllegal() throws Exception {
+        // 100000 s, over Integer.MAX_VALUE samples
+        Sequence tooLong = new Sequence(Sequence.PPQ, 1);
+        tooLong.createTrack().add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 200_000));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> D77EventStream.compile(tooLong, 44100));
+        assertTrue(e.getMessage().startsWith("too long"));
+
+        Sequence brokenTempo = new Sequence(Sequence.PPQ, 480);
+        brokenTempo.createTrack().add(new MidiEvent(new MetaMessage(0x51, new byte[] {0x07, (byte) 0xa1}, 2), 0));
+        assertThrows(IllegalArgumentException.class, () -> D77EventStream.compile(brokenTempo, 44100));
+    }
+
+    @Test
+    void testLoneEox() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.END_OF_EXCLUSIVE), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        D77EventStream stream = D77EventStream.compile(sequence, 44100);
+
+        assertEquals(1, stream.getEvents());
+        assertEquals(0, stream.getMaxSysexLength());
+        assertFalse(stream.cursor().isSysex());
+    }
+
+    static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2026 by Naohide Sano, All rights reserved.
+ *
+ * Programmed by Naohide Sano
+ */
+
+package vavi.sound.midi.d77;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * D77MeterTest. (no native library needed)
+ *
+ * @author <a href="mailto:umjammer@gmail.com">Naohide Sano</a> (nsano)
+ * @version 0.00 2026-10-19 nsano initial version <br>
+ */
+class D77MeterTest {
+
+    static final int FREQ = 44100;
+    static final int FRAMES = 512;
+
+    /** 1kHz sine on both channels */
+    static byte[] sine(int block, double amplitude) {
+        return sine(block, 1000, amplitude, amplitude);
+    }
+
+    static byte[] sine(int block, double freq, double left, double right) {
+        byte[] pcm = new byte[FRAMES * 4];
+        for (int i = 0; i < FRAMES; i++) {
+            double v = Math.sin(2 * Math.PI * freq * (block * FRAMES + i) / FREQ) * 32767;
+            short vl = (short) Math.round(v * left);
+            short vr = (short) Math.round(v * right);
+            pcm[i * 4] = (byte) vl;
+            pcm[i * 4 + 1] = (byte) (vl >> 8);
+            pcm[i * 4 + 2] = (byte) vr;
+            pcm[i * 4 + 3] = (byte) (vr >> 8);
+        }
+        return pcm;
+    }
+
+    static byte[] constant(short v) {
+        byte[] pcm = new byte[FRAMES * 4];
+        for (int i = 0; i < FRAMES; i++) {
+            pcm[i * 4] = pcm[i * 4 + 2] = (byte) v;
+            pcm[i * 4 + 1] = pcm[i * 4 + 3] = (byte) (v >> 8);
+        }
+        return pcm;
+    }
+
+    @Test
+    void testSine() throws Exception {
+        D77Meter meter = new D77Meter(FREQ);
+        for (int i = 0; i < 200; i++) {
+            byte[] pcm = sine(i, 0.5);
+            meter.process(pcm, pcm.length);
+        }
+        D77Meter.Levels levels = meter.snapshot();
+
+        assertEquals(-6.02, D77Meter.Levels.dB(levels.peakL()), 0.01);
+        assertEquals(-6.02, D77Meter.Levels.dB(levels.peakR()), 0.01);
+        assertEquals(-9.03, D77Meter.Levels.dB(levels.rmsL()), 0.05);
+        assertEquals(-9.03, D77Meter.Levels.dB(levels.rmsR()), 0.05);
+        // K weighting is about +0.69 dB at 1kHz, cancelling the -0.691 offset
+        assertEquals(-6.02, levels.loudness(), 0.05);
+        assertEquals(0, levels.clipped());
+        assertEquals(200 * FRAMES, levels.frames());
+    }
+
+    /** BS.1770: 0 dBFS 997Hz sine on one channel is -3.01 LUFS */
+    @Test
+    void testReference() throws Exception {
+        D77Meter meter = new D77Meter(FREQ);
+        for (int i = 0; i < 10 * FREQ / FRAMES; i++) {
+            byte[] pcm = sine(i, 997, 1, 0);
+            meter.process(pcm, pcm.length);
+        }
+        assertEquals(-3.01, meter.snapshot().loudness(), 0.05);
+    }
+
+    /** blocks 10 LU below the ungated loudness are excluded */
+    @Test
+    void testRelativeGate() throws Exception {
+        D77Meter meter = new D77Meter(FREQ);
+        int blocks = 10 * FREQ / FRAMES;
+        for (int i = 0; i < blocks; i++) {
+            byte[] pcm = sine(i, 0.1); // about -20 LUFS
+            meter.process(pcm, pcm.length);
+        }
+        double loud = meter.snapshot().loudness();
+        assertEquals(-20, loud, 0.1);
+        for (int i = 0; i < blocks; i++) {
+            byte[] pcm = sine(i, 0.01); // about -40 LUFS
+            meter.process(pcm, pcm.length);
+        }
+        // without the relative gate this would be about -23
+        assertEquals(loud, meter.snapshot().loudness(), 0.1);
+    }
+
+    @Test
+    void testPeakHold() throws Exception {
+        D77Meter meter = new D77Meter(FREQ);
+        byte[] loud = constant(Short.MIN_VALUE);
+        byte[] quiet = constant((short) 1024);
+        meter.process(loud, loud.length);
+        meter.process(quiet, quiet.length);
+
+        D77Meter.Levels levels = meter.snapshot();
+        assertEquals(1024 / 32768d, levels.peakL(), 1e-9);
+        assertEquals(1, levels.peakHoldL(), 1e-9);
+        assertEquals(1, levels.peakHoldR(), 1e-9);
+        assertEquals(2 * FRAMES, levels.clipped());
+
+        // consumed by the snapshot
+        meter.process(quiet, quiet.length);
+        levels = meter.snapshot();
+        assertEquals(1024 / 32768d, levels.peakHoldL(), 1e-9);
+        assertEquals(0, levels.clipped());
+    }
+
+    @Test
+    void testReset() throws Exception {
+        D77Meter meter = new D77Meter(FREQ);
+        for (int i = 0; i < 100; i++) {
+            byte[] pcm = sine(i, 0.5);
+            meter.process(pcm, pcm.length);
+        }
+        double before = meter.snapshot().loudness();
+        assertEquals(-6.02, before, 0.05);
+
+        meter.reset();
+        for (int i = 0; i < 100; i++) {
+            byte[] pcm = sine(i, 0.05);
+            meter.process(pcm, pcm.length);
+        }
+        D77Meter.Levels levels = meter.snapshot();
+        assertEquals(100 * FRAMES, levels.frames());
+        // only the quiet part counts after reset
+        assertEquals(-26.02, levels.loudness(), 0.05);
+    }
+}